@@ -0,0 +1,589 @@
+package org.cis1200;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * One node of a {@link ServerCluster}. Each node wraps its own
+ * {@link ServerModel} and plays two roles:
+ * 1. it is the home of the users whose connections it holds, and accepts
+ * their commands through the same methods {@link ServerModel} offers, and
+ * 2. it owns the channels and the slice of the nickname directory that the
+ * {@link HashRing} assigns to it.
+ *
+ * Channel commands are forwarded to the channel's owner node, which keeps
+ * replicas of any remote users in its channels. Nicknames are reserved in
+ * the directory of the node owning the nickname, which makes them unique
+ * across the whole cluster. All peer traffic is one of the operations of
+ * {@link ClusterTransport}, answered by this class's {@code handle} methods.
+ *
+ * The node a command arrives on gets the resulting {@link Broadcast} as the
+ * method's return value. Every other node that is home to one of its
+ * recipients receives a copy through {@link ClusterTransport#deliver}, and
+ * hands it to its delivery handler. Error {@link Broadcast}s only go to the
+ * sender, so they are never sent to other nodes. Each node's backend only sends a
+ * {@link Broadcast} to the recipients connected to that node.
+ *
+ * Like {@link ServerModel}, a node is not thread-safe: the cluster is
+ * expected to be driven from a single thread, and user iDs handed to
+ * {@link #registerUser(int)} must be unique across all nodes.
+ */
+public final class ClusterNode {
+
+    private final String nodeId;
+
+    private final ClusterTransport transport;
+
+    private final HashRing ring; // this node's view of cluster membership
+
+    private final ServerModel model; // channels owned here + users homed here
+
+    private TreeMap<String, ClusterTransport.Member> nicknameDirectory; // owned nicknames -> holders
+
+    private TreeMap<Integer, String> homeById; // user iD -> home node, for users the model knows
+
+    // owned Channel -> home node -> number of the Channel's members homed there
+    private TreeMap<String, TreeMap<String, Integer>> homesByChannel;
+
+    // ring key of the node that hands out "UserX" suffixes
+    private static final String SUFFIX_KEY = "User";
+
+    // suffix allocator state, only used while this node owns SUFFIX_KEY
+    private int nextSuffix; // smallest suffix never handed out
+    private TreeSet<Integer> freedSuffixes; // suffixes below nextSuffix that are free again
+
+    private Consumer<Broadcast> deliveryHandler; // sends Broadcasts to local connections
+
+    ClusterNode(String nodeId, ClusterTransport transport, Collection<String> peers) {
+        this.nodeId = nodeId;
+        this.transport = transport;
+        this.ring = new HashRing(peers);
+        this.ring.addNode(nodeId);
+        this.model = new ServerModel();
+        this.nicknameDirectory = new TreeMap<>();
+        this.homeById = new TreeMap<>();
+        this.homesByChannel = new TreeMap<>();
+        this.freedSuffixes = new TreeSet<>();
+        this.deliveryHandler = broadcast -> { };
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Gets this node's local model. Holds the channels this node owns and
+     * the users homed here, plus replicas of remote channel members.
+     *
+     * This method is provided for testing.
+     *
+     * @return The node's {@link ServerModel}
+     */
+    ServerModel getModel() {
+        return model;
+    }
+
+    HashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * Sets the handler that receives {@link Broadcast}s produced on other
+     * nodes. It should send each one to whichever of its recipients are
+     * connected to this node and ignore the rest.
+     *
+     * @param handler The backend hook for this node's connections
+     */
+    public void setDeliveryHandler(Consumer<Broadcast> handler) {
+        this.deliveryHandler = handler;
+    }
+
+    /**
+     * Called by the {@link ClusterTransport} when another node produced a
+     * {@link Broadcast} that may have recipients connected here.
+     *
+     * @param broadcast The {@link Broadcast} to pass to the delivery handler
+     */
+    void deliver(Broadcast broadcast) {
+        deliveryHandler.accept(broadcast);
+    }
+
+    // ====================================
+    // == Commands from users homed here ==
+    // ====================================
+
+    /**
+     * Registers a user connecting to this node under the "UserX" nickname
+     * with the smallest free suffix across the cluster, as
+     * {@link ServerModel#registerUser(int)} does on a single server.
+     *
+     * The suffix comes from the allocator on the node owning
+     * {@link #SUFFIX_KEY}, and the nickname is then reserved in the
+     * directory: two calls, however many nodes there are. The allocator
+     * cannot see nicknames users chose for themselves, so if someone renamed
+     * into "UserX" the reservation fails and the next suffix is tried.
+     *
+     * @param userId The new user's cluster-wide unique iD
+     * @return The {@link Broadcast} object generated by
+     *         {@link Broadcast#connected(String)}, or null if the user is
+     *         already connected here
+     */
+    public Broadcast registerUser(int userId) {
+        if (model.isConnected(userId)) {
+            return null;
+        }
+        String nickname;
+        do {
+            // a suffix whose reservation fails stays allocated until its holder releases it
+            nickname = "User" + transport.allocateSuffix(ring.ownerOf(SUFFIX_KEY));
+        } while (!reserve(nickname, userId));
+        homeById.put(userId, nodeId);
+        return model.registerUser(userId, nickname);
+    }
+
+    /**
+     * Disconnects a user homed on this node. Every node drops the user from
+     * its channels and deletes the channels they own.
+     *
+     * @param userId The iD of the user to deregister
+     * @return The {@link Broadcast} object generated by
+     *         {@link Broadcast#disconnected(String, Collection)}, or null if
+     *         the user is not connected here
+     */
+    public Broadcast deregisterUser(int userId) {
+        if (!model.isConnected(userId)) {
+            return null;
+        }
+        String nn = model.getNickname(userId);
+        TreeSet<String> homes = new TreeSet<>();
+        TreeSet<String> usersToNotify = new TreeSet<>();
+        for (String peer : ring.getNodes()) {
+            ClusterTransport.PeerUpdate update = transport.forgetUser(peer, userId);
+            homes.addAll(update.homes);
+            usersToNotify.addAll(update.usersToNotify);
+        }
+        release(nn, userId);
+        Broadcast result = Broadcast.disconnected(nn, usersToNotify);
+        deliverRemote(result, homes, nodeId);
+        return result;
+    }
+
+    /**
+     * Changes the nickname of a user homed on this node. The new nickname
+     * is reserved in the cluster-wide directory before any node renames the
+     * user, so two nodes can never hand out the same nickname.
+     *
+     * @param nickCommand The {@link NicknameCommand} to handle
+     * @return The same {@link Broadcast} {@link ServerModel#changeNickname}
+     *         would produce, with recipients gathered from every node
+     */
+    public Broadcast changeNickname(NicknameCommand nickCommand) {
+        int iD = nickCommand.getSenderId();
+        String nn = nickCommand.getNewNickname();
+
+        if (!model.isConnected(iD)) {
+            return null;
+        }
+        if (!ServerModel.isValidName(nn)) {
+            return Broadcast.error(nickCommand, ServerResponse.INVALID_NAME);
+        }
+        if (!reserve(nn, iD)) {
+            return Broadcast.error(nickCommand, ServerResponse.NAME_ALREADY_IN_USE);
+        }
+        release(model.getNickname(iD), iD);
+
+        TreeSet<String> homes = new TreeSet<>();
+        TreeSet<String> usersToNotify = new TreeSet<>();
+        for (String peer : ring.getNodes()) {
+            ClusterTransport.PeerUpdate update = transport.renameUser(peer, iD, nn);
+            homes.addAll(update.homes);
+            usersToNotify.addAll(update.usersToNotify);
+        }
+        Broadcast result = Broadcast.okay(nickCommand, usersToNotify);
+        deliverRemote(result, homes, nodeId);
+        return result;
+    }
+
+    public Broadcast createChannel(CreateCommand createCommand) {
+        return forward(createCommand.getChannel(), createCommand,
+                Arrays.asList(localMember(createCommand.getSenderId())));
+    }
+
+    public Broadcast joinChannel(JoinCommand joinCommand) {
+        return forward(joinCommand.getChannel(), joinCommand,
+                Arrays.asList(localMember(joinCommand.getSenderId())));
+    }
+
+    public Broadcast sendMessage(MessageCommand messageCommand) {
+        return forward(messageCommand.getChannel(), messageCommand,
+                Collections.emptyList());
+    }
+
+    public Broadcast leaveChannel(LeaveCommand leaveCommand) {
+        return forward(leaveCommand.getChannel(), leaveCommand,
+                Arrays.asList(localMember(leaveCommand.getSenderId())));
+    }
+
+    /**
+     * Forwards an invite to the Channel's owner node. The invited user is
+     * resolved through the nickname directory first, since they may be
+     * homed on any node.
+     *
+     * @param inviteCommand The {@link InviteCommand} to handle
+     * @return The {@link Broadcast} produced by the owner node, or
+     *         {@link ServerResponse#NO_SUCH_USER} if the nickname is unknown
+     */
+    public Broadcast inviteUser(InviteCommand inviteCommand) {
+        ClusterTransport.Member invited = lookup(inviteCommand.getUserToInvite());
+        if (invited == null) {
+            return Broadcast.error(inviteCommand, ServerResponse.NO_SUCH_USER);
+        }
+        return forward(inviteCommand.getChannel(), inviteCommand,
+                Arrays.asList(localMember(inviteCommand.getSenderId()), invited));
+    }
+
+    /**
+     * Forwards a kick to the Channel's owner node, resolving the kicked
+     * user through the nickname directory first.
+     *
+     * @param kickCommand The {@link KickCommand} to handle
+     * @return The {@link Broadcast} produced by the owner node, or
+     *         {@link ServerResponse#NO_SUCH_USER} if the nickname is unknown
+     */
+    public Broadcast kickUser(KickCommand kickCommand) {
+        ClusterTransport.Member kicked = lookup(kickCommand.getUserToKick());
+        if (kicked == null) {
+            return Broadcast.error(kickCommand, ServerResponse.NO_SUCH_USER);
+        }
+        return forward(kickCommand.getChannel(), kickCommand,
+                Arrays.asList(localMember(kickCommand.getSenderId()), kicked));
+    }
+
+    private ClusterTransport.Member localMember(int userId) {
+        return new ClusterTransport.Member(userId, model.getNickname(userId), nodeId);
+    }
+
+    private Broadcast forward(String channelName, Command command,
+            List<ClusterTransport.Member> replicas) {
+        return transport.forwardCommand(ring.ownerOf(channelName), nodeId, command, replicas);
+    }
+
+    // =====================================
+    // == Cluster-wide nickname directory ==
+    // =====================================
+
+    // reserves a nickname for a user homed on this node
+    private boolean reserve(String nickname, int userId) {
+        return transport.reserveNickname(ring.ownerOf(nickname), nickname,
+                new ClusterTransport.Member(userId, nickname, nodeId));
+    }
+
+    private void release(String nickname, int userId) {
+        transport.releaseNickname(ring.ownerOf(nickname), nickname, userId);
+        int suffix = suffixOf(nickname);
+        if (suffix != -1) {
+            transport.freeSuffix(ring.ownerOf(SUFFIX_KEY), suffix);
+        }
+    }
+
+    // the X of a "UserX" nickname the allocator could have handed out, else -1
+    private static int suffixOf(String nickname) {
+        String digits = nickname.substring(Math.min(nickname.length(), SUFFIX_KEY.length()));
+        if (!nickname.startsWith(SUFFIX_KEY) || digits.isEmpty() || digits.length() > 9
+                || (digits.length() > 1 && digits.charAt(0) == '0')) {
+            return -1;
+        }
+        for (char ch : digits.toCharArray()) {
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+        }
+        return Integer.parseInt(digits);
+    }
+
+    // returns null if the nickname is not in use
+    private ClusterTransport.Member lookup(String nickname) {
+        return transport.lookupNickname(ring.ownerOf(nickname), nickname);
+    }
+
+    // ================================================
+    // == Requests from peers (via ClusterTransport) ==
+    // ================================================
+
+    boolean handleReserveNickname(String nickname, ClusterTransport.Member holder) {
+        return nicknameDirectory.putIfAbsent(nickname, holder) == null;
+    }
+
+    void handleReleaseNickname(String nickname, int userId) {
+        ClusterTransport.Member holder = nicknameDirectory.get(nickname);
+        if (holder != null && holder.userId == userId) {
+            nicknameDirectory.remove(nickname);
+        }
+    }
+
+    ClusterTransport.Member handleLookupNickname(String nickname) {
+        return nicknameDirectory.get(nickname);
+    }
+
+    int handleAllocateSuffix() {
+        if (!freedSuffixes.isEmpty()) {
+            return freedSuffixes.pollFirst();
+        }
+        return nextSuffix++;
+    }
+
+    void handleFreeSuffix(int suffix) {
+        if (suffix < nextSuffix) {
+            freedSuffixes.add(suffix);
+        }
+        // keep the freed set small by shrinking nextSuffix past trailing free suffixes
+        while (!freedSuffixes.isEmpty() && freedSuffixes.last() == nextSuffix - 1) {
+            nextSuffix = freedSuffixes.pollLast();
+        }
+    }
+
+    void handleImportSuffixes(int next, TreeSet<Integer> freed) {
+        nextSuffix = next;
+        freedSuffixes = new TreeSet<>(freed);
+    }
+
+    /**
+     * Runs a Channel command forwarded by {@code origin} against this node's
+     * model. The given replicas are added first and dropped again afterwards
+     * unless the command left them in, or owning, a Channel here.
+     *
+     * @param origin   The iD of the node the command arrived on
+     * @param command  A create, join, message, leave, invite or kick command
+     * @param replicas Users the command refers to
+     * @return The {@link Broadcast} produced by the command
+     * @throws IllegalArgumentException if the command is not a Channel command
+     */
+    Broadcast handleCommand(String origin, Command command,
+            List<ClusterTransport.Member> replicas) {
+        for (ClusterTransport.Member member : replicas) {
+            addReplica(member);
+        }
+        Broadcast result;
+        if (command instanceof CreateCommand) {
+            CreateCommand create = (CreateCommand) command;
+            result = runAndDeliver(create.getChannel(), create.getSenderId(), origin,
+                    () -> model.createChannel(create));
+        } else if (command instanceof JoinCommand) {
+            JoinCommand join = (JoinCommand) command;
+            result = runAndDeliver(join.getChannel(), join.getSenderId(), origin,
+                    () -> model.joinChannel(join));
+        } else if (command instanceof MessageCommand) {
+            MessageCommand message = (MessageCommand) command;
+            String channelName = message.getChannel();
+            boolean sent = model.isMember(channelName, message.getSenderId());
+            result = model.sendMessage(message);
+            if (sent) {
+                deliverRemote(result, homesOf(channelName), origin);
+            }
+        } else if (command instanceof LeaveCommand) {
+            LeaveCommand leave = (LeaveCommand) command;
+            result = runAndDeliver(leave.getChannel(), leave.getSenderId(), origin,
+                    () -> model.leaveChannel(leave));
+        } else if (command instanceof InviteCommand) {
+            InviteCommand invite = (InviteCommand) command;
+            String channelName = invite.getChannel();
+            int invitedId = model.getUserId(invite.getUserToInvite());
+            // inviting a current member succeeds without changing membership
+            boolean reinvite = model.isMember(channelName, invitedId)
+                    && model.isInviteOnly(channelName)
+                    && model.getOwner(channelName).equals(model.getNickname(invite.getSenderId()));
+            result = runAndDeliver(channelName, invitedId, origin,
+                    () -> model.inviteUser(invite));
+            if (reinvite) {
+                deliverRemote(result, homesOf(channelName), origin);
+            }
+        } else if (command instanceof KickCommand) {
+            KickCommand kick = (KickCommand) command;
+            result = runAndDeliver(kick.getChannel(), model.getUserId(kick.getUserToKick()),
+                    origin, () -> model.kickUser(kick));
+        } else {
+            throw new IllegalArgumentException("not a channel command: " + command);
+        }
+        for (ClusterTransport.Member member : replicas) {
+            pruneReplica(member.userId); // a replica stays only if the command kept it in use
+        }
+        return result;
+    }
+
+    void handleImportChannel(ServerModel.ChannelState state, TreeMap<Integer, String> homes) {
+        String channelName = model.importChannel(state);
+        homesByChannel.remove(channelName);
+        for (Map.Entry<Integer, String> home : homes.entrySet()) {
+            homeById.putIfAbsent(home.getKey(), home.getValue());
+            if (model.isMember(channelName, home.getKey())) {
+                addHome(channelName, home.getKey());
+            }
+        }
+    }
+
+    // forgets a disconnected user along with replicas only their channels needed
+    ClusterTransport.PeerUpdate handleForgetUser(int userId) {
+        Collection<Integer> peers = model.getChannelPeers(userId);
+        TreeSet<String> owned = model.getallchannels(userId);
+        TreeSet<String> joined = new TreeSet<>();
+        for (String channelName : homesByChannel.keySet()) {
+            if (model.isMember(channelName, userId)) {
+                joined.add(channelName);
+            }
+        }
+        TreeSet<String> affected = new TreeSet<>(owned);
+        affected.addAll(joined);
+        TreeSet<String> homes = homesOf(affected);
+        TreeSet<String> usersToNotify = model.forgetUser(userId);
+        for (String channelName : owned) {
+            homesByChannel.remove(channelName); // deleted along with its owner
+        }
+        for (String channelName : joined) {
+            removeHome(channelName, userId);
+        }
+        homeById.remove(userId);
+        for (Integer peer : peers) {
+            pruneReplica(peer);
+        }
+        return new ClusterTransport.PeerUpdate(usersToNotify, homes);
+    }
+
+    ClusterTransport.PeerUpdate handleRenameUser(int userId, String nickname) {
+        TreeSet<String> joined = new TreeSet<>();
+        for (String channelName : homesByChannel.keySet()) {
+            if (model.isMember(channelName, userId)) {
+                joined.add(channelName);
+            }
+        }
+        TreeSet<String> homes = homesOf(joined);
+        TreeSet<String> usersToNotify = model.renameUser(userId, nickname);
+        return new ClusterTransport.PeerUpdate(usersToNotify, homes);
+    }
+
+    // =====================================
+    // == Replicas and broadcast delivery ==
+    // =====================================
+
+    private void addReplica(ClusterTransport.Member member) {
+        model.addRemoteUser(member.userId, member.nickname);
+        if (model.getNickname(member.userId) != null) {
+            homeById.putIfAbsent(member.userId, member.homeNodeId);
+        }
+    }
+
+    private void pruneReplica(int userId) {
+        model.pruneRemoteUser(userId);
+        if (model.getNickname(userId) == null) {
+            homeById.remove(userId);
+        }
+    }
+
+    private void addHome(String channelName, int userId) {
+        homesByChannel.computeIfAbsent(channelName, nm -> new TreeMap<>())
+                .merge(homeById.get(userId), 1, Integer::sum);
+    }
+
+    private void removeHome(String channelName, int userId) {
+        TreeMap<String, Integer> homes = homesByChannel.get(channelName);
+        if (homes != null) {
+            homes.computeIfPresent(homeById.get(userId), (home, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    // the home nodes of the members of an owned Channel; no copy is made
+    private Collection<String> homesOf(String channelName) {
+        TreeMap<String, Integer> homes = homesByChannel.get(channelName);
+        return homes == null ? Collections.emptySet() : homes.keySet();
+    }
+
+    private TreeSet<String> homesOf(Collection<String> channelNames) {
+        TreeSet<String> homes = new TreeSet<>();
+        for (String channelName : channelNames) {
+            homes.addAll(homesOf(channelName));
+        }
+        return homes;
+    }
+
+    /**
+     * Runs a command that adds {@code userId} to, or removes them from, a
+     * Channel owned by this node. If the command changed the user's
+     * membership, the Channel's home nodes are updated and the resulting
+     * {@link Broadcast} is sent to the home node of every recipient except
+     * {@code origin}, which receives it as the call's return value. A
+     * command that changed nothing failed, and its error {@link Broadcast}
+     * is addressed only to the sender on {@code origin}.
+     *
+     * @param channelName The Channel the command targets
+     * @param userId      The user whose membership the command changes
+     * @param origin      The iD of the node the command arrived on
+     * @param command     The {@link ServerModel} call to run
+     * @return The {@link Broadcast} produced by the command
+     */
+    private Broadcast runAndDeliver(String channelName, int userId, String origin,
+            Supplier<Broadcast> command) {
+        boolean wasMember = model.isMember(channelName, userId);
+        Broadcast result = command.get();
+        boolean isMember = model.isMember(channelName, userId);
+        if (isMember && !wasMember) {
+            addHome(channelName, userId);
+            deliverRemote(result, homesOf(channelName), origin);
+        } else if (wasMember && !isMember) {
+            // the removed user is still a recipient
+            TreeSet<String> homes = new TreeSet<>(homesOf(channelName));
+            removeHome(channelName, userId);
+            deliverRemote(result, homes, origin);
+        }
+        return result;
+    }
+
+    private void deliverRemote(Broadcast broadcast, Collection<String> homes, String origin) {
+        for (String home : homes) {
+            if (!home.equals(origin)) {
+                transport.deliver(home, broadcast);
+            }
+        }
+    }
+
+    // ===============
+    // == Rebalance ==
+    // ===============
+
+    /**
+     * Hands every Channel, directory entry and, if it moved, the suffix
+     * allocator that this node no longer owns under its current
+     * {@link HashRing} to the new owner, then drops
+     * replicas of remote users that are no longer referenced here.
+     * Called by {@link ServerCluster} after membership changes.
+     */
+    void rebalance() {
+        for (String channelName : model.getChannels()) {
+            String owner = ring.ownerOf(channelName);
+            if (!owner.equals(nodeId)) {
+                TreeMap<Integer, String> homes = new TreeMap<>();
+                for (Integer iD : model.getMemberIds(channelName)) {
+                    homes.put(iD, homeById.get(iD));
+                }
+                homesByChannel.remove(channelName);
+                transport.importChannel(owner, model.exportChannel(channelName), homes);
+            }
+        }
+        for (Map.Entry<String, ClusterTransport.Member> entry
+                : new TreeMap<>(nicknameDirectory).entrySet()) {
+            String nickname = entry.getKey();
+            String owner = ring.ownerOf(nickname);
+            if (!owner.equals(nodeId)) {
+                nicknameDirectory.remove(nickname);
+                transport.reserveNickname(owner, nickname, entry.getValue());
+            }
+        }
+        String allocator = ring.ownerOf(SUFFIX_KEY);
+        if (!allocator.equals(nodeId) && (nextSuffix > 0 || !freedSuffixes.isEmpty())) {
+            transport.importSuffixes(allocator, nextSuffix, freedSuffixes);
+            nextSuffix = 0;
+            freedSuffixes = new TreeSet<>();
+        }
+        model.pruneRemoteUsers();
+        homeById.keySet().removeIf(iD -> model.getNickname(iD) == null);
+    }
+}
@@ -0,0 +1,175 @@
+package org.cis1200;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Carries requests between the nodes of a {@link ServerCluster}. A
+ * {@link ClusterNode} never touches a peer directly; every interaction is
+ * one of the operations below, addressed by node iD and carrying only
+ * plain values: primitives, Strings, the {@link Serializable} payload
+ * classes declared here and in {@link ServerModel.ChannelState}, and the
+ * {@link Command}s and {@link Broadcast}s a network transport already
+ * encodes with the client protocol.
+ *
+ * Each operation is answered by the matching {@code handle} method on the
+ * target {@link ClusterNode}. {@link LoopbackTransport} calls those methods
+ * directly so the whole cluster can run in one JVM.
+ */
+public interface ClusterTransport {
+
+    /**
+     * A user as seen by other nodes: their iD, nickname and the node
+     * holding their connection.
+     */
+    final class Member implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int userId;
+        final String nickname;
+        final String homeNodeId;
+
+        Member(int userId, String nickname, String homeNodeId) {
+            this.userId = userId;
+            this.nickname = nickname;
+            this.homeNodeId = homeNodeId;
+        }
+    }
+
+    /**
+     * One node's share of a disconnect or nickname change: the users there
+     * who must be told, and the nodes those users are homed on.
+     */
+    final class PeerUpdate implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final TreeSet<String> usersToNotify;
+        final TreeSet<String> homes;
+
+        PeerUpdate(TreeSet<String> usersToNotify, TreeSet<String> homes) {
+            this.usersToNotify = usersToNotify;
+            this.homes = homes;
+        }
+    }
+
+    /**
+     * Makes a node reachable under its {@link ClusterNode#getNodeId()}.
+     *
+     * @param node The node to attach
+     */
+    void attach(ClusterNode node);
+
+    /**
+     * Stops routing requests to the given node.
+     *
+     * @param nodeId The iD of the node to detach
+     */
+    void detach(String nodeId);
+
+    // Every operation below throws IllegalStateException if no node with
+    // the given iD is attached.
+
+    /**
+     * Reserves a nickname in the directory partition of the given node.
+     *
+     * @param nodeId   The node owning the nickname
+     * @param nickname The nickname to reserve
+     * @param holder   The user claiming it
+     * @return true if the nickname was free and is now reserved
+     */
+    boolean reserveNickname(String nodeId, String nickname, Member holder);
+
+    /**
+     * Releases a nickname, if it is still held by the given user.
+     *
+     * @param nodeId   The node owning the nickname
+     * @param nickname The nickname to release
+     * @param userId   The user giving it up
+     */
+    void releaseNickname(String nodeId, String nickname, int userId);
+
+    /**
+     * Hands out the smallest "UserX" suffix that is not currently in use.
+     * The suffix stays in use until it is freed.
+     *
+     * @param nodeId The node running the suffix allocator
+     * @return The suffix to try
+     */
+    int allocateSuffix(String nodeId);
+
+    /**
+     * Returns a "UserX" suffix to the allocator once its nickname is released.
+     *
+     * @param nodeId The node running the suffix allocator
+     * @param suffix The suffix that is free again
+     */
+    void freeSuffix(String nodeId, int suffix);
+
+    /**
+     * Hands the suffix allocator over to its new node during rebalancing.
+     *
+     * @param nodeId The allocator's new node
+     * @param next   The smallest suffix never handed out
+     * @param freed  Suffixes below {@code next} that are free again
+     */
+    void importSuffixes(String nodeId, int next, TreeSet<Integer> freed);
+
+    /**
+     * Looks up who holds a nickname.
+     *
+     * @param nodeId   The node owning the nickname
+     * @param nickname The nickname to look up
+     * @return The holder, or null if the nickname is not in use
+     */
+    Member lookupNickname(String nodeId, String nickname);
+
+    /**
+     * Runs a Channel command on the node owning the Channel.
+     *
+     * @param nodeId       The node owning the Channel
+     * @param originNodeId The node the command arrived on
+     * @param command      A create, join, message, leave, invite or kick command
+     * @param replicas     Users the owner must know about to run the command
+     * @return The {@link Broadcast} produced by the command
+     */
+    Broadcast forwardCommand(String nodeId, String originNodeId, Command command,
+            List<Member> replicas);
+
+    /**
+     * Hands a Channel over to its new owner during rebalancing.
+     *
+     * @param nodeId The Channel's new owner
+     * @param state  The Channel's exported state
+     * @param homes  The home node of the Channel's owner and each member
+     */
+    void importChannel(String nodeId, ServerModel.ChannelState state,
+            TreeMap<Integer, String> homes);
+
+    /**
+     * Drops a disconnected user from the given node's channels.
+     *
+     * @param nodeId The node to update
+     * @param userId The disconnected user
+     * @return Who on that node must be told, and where they are homed
+     */
+    PeerUpdate forgetUser(String nodeId, int userId);
+
+    /**
+     * Applies a nickname change on the given node.
+     *
+     * @param nodeId   The node to update
+     * @param userId   The renamed user
+     * @param nickname The user's new nickname
+     * @return Who on that node must be told, and where they are homed
+     */
+    PeerUpdate renameUser(String nodeId, int userId, String nickname);
+
+    /**
+     * Hands a {@link Broadcast} to the given node so it can reach the
+     * recipients whose connections live there.
+     *
+     * @param nodeId    The iD of the node to deliver to
+     * @param broadcast The {@link Broadcast} produced on another node
+     */
+    void deliver(String nodeId, Broadcast broadcast);
+}
@@ -0,0 +1,104 @@
+package org.cis1200;
+
+import java.util.*;
+
+/**
+ * A consistent-hash ring mapping keys (Channel names and nicknames) to the
+ * iD of the node that owns them. Each node is placed on the ring at
+ * {@link #VIRTUAL_NODES} points so that adding or removing a node only moves
+ * the keys adjacent to its points.
+ *
+ * Point placement depends only on the set of nodes, never on the order they
+ * were added, so every {@link ClusterNode} holding the same membership agrees
+ * on ownership.
+ */
+final class HashRing {
+
+    static final int VIRTUAL_NODES = 64;
+
+    private final TreeSet<String> nodes; // iDs of nodes on the ring
+    private TreeMap<Integer, String> points; // ring position -> node iD
+
+    HashRing() {
+        this.nodes = new TreeSet<>();
+        this.points = new TreeMap<>();
+    }
+
+    HashRing(Collection<String> nodeIds) {
+        this();
+        nodes.addAll(nodeIds);
+        rebuild();
+    }
+
+    void addNode(String nodeId) {
+        if (nodes.add(nodeId)) {
+            rebuild();
+        }
+    }
+
+    void removeNode(String nodeId) {
+        if (nodes.remove(nodeId)) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Gets the iDs of all nodes on the ring. Changes to the returned
+     * collection do not affect the ring.
+     *
+     * @return The node iDs, in sorted order
+     */
+    Collection<String> getNodes() {
+        return new TreeSet<String>(nodes);
+    }
+
+    /**
+     * Finds the node owning the given key: the first node point at or after
+     * the key's hash, wrapping around to the start of the ring.
+     *
+     * @param key The Channel name or nickname to place
+     * @return The iD of the owning node
+     * @throws IllegalStateException if the ring has no nodes
+     */
+    String ownerOf(String key) {
+        if (points.isEmpty()) {
+            throw new IllegalStateException("hash ring has no nodes");
+        }
+        Map.Entry<Integer, String> entry = points.ceilingEntry(hash(key));
+        if (entry == null) {
+            entry = points.firstEntry();
+        }
+        return entry.getValue();
+    }
+
+    private void rebuild() {
+        TreeMap<Integer, String> next = new TreeMap<>();
+        for (String nodeId : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                // on a collision the smaller node iD wins, independent of order
+                next.merge(hash(nodeId + "#" + i), nodeId,
+                        (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        }
+        points = next;
+    }
+
+    /**
+     * 32-bit FNV-1a over the key's characters, followed by a finalizer so
+     * that similar keys ("User1", "User2") land far apart. Unlike
+     * {@link String#hashCode()}, this stays well distributed around the ring.
+     */
+    static int hash(String key) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,94 @@
+package org.cis1200;
+
+import java.util.*;
+
+/**
+ * A {@link ClusterTransport} for nodes that all live in the current JVM.
+ * Each operation calls the matching handler on the target node
+ * synchronously on the caller's thread, which lets a whole
+ * {@link ServerCluster} be driven and tested like a single
+ * {@link ServerModel}.
+ */
+public final class LoopbackTransport implements ClusterTransport {
+
+    private TreeMap<String, ClusterNode> nodesById; // attached nodes
+
+    public LoopbackTransport() {
+        this.nodesById = new TreeMap<>();
+    }
+
+    @Override
+    public void attach(ClusterNode node) {
+        nodesById.put(node.getNodeId(), node);
+    }
+
+    @Override
+    public void detach(String nodeId) {
+        nodesById.remove(nodeId);
+    }
+
+    @Override
+    public boolean reserveNickname(String nodeId, String nickname, Member holder) {
+        return nodeFor(nodeId).handleReserveNickname(nickname, holder);
+    }
+
+    @Override
+    public void releaseNickname(String nodeId, String nickname, int userId) {
+        nodeFor(nodeId).handleReleaseNickname(nickname, userId);
+    }
+
+    @Override
+    public int allocateSuffix(String nodeId) {
+        return nodeFor(nodeId).handleAllocateSuffix();
+    }
+
+    @Override
+    public void freeSuffix(String nodeId, int suffix) {
+        nodeFor(nodeId).handleFreeSuffix(suffix);
+    }
+
+    @Override
+    public void importSuffixes(String nodeId, int next, TreeSet<Integer> freed) {
+        nodeFor(nodeId).handleImportSuffixes(next, freed);
+    }
+
+    @Override
+    public Member lookupNickname(String nodeId, String nickname) {
+        return nodeFor(nodeId).handleLookupNickname(nickname);
+    }
+
+    @Override
+    public Broadcast forwardCommand(String nodeId, String originNodeId, Command command,
+            List<Member> replicas) {
+        return nodeFor(nodeId).handleCommand(originNodeId, command, replicas);
+    }
+
+    @Override
+    public void importChannel(String nodeId, ServerModel.ChannelState state,
+            TreeMap<Integer, String> homes) {
+        nodeFor(nodeId).handleImportChannel(state, homes);
+    }
+
+    @Override
+    public PeerUpdate forgetUser(String nodeId, int userId) {
+        return nodeFor(nodeId).handleForgetUser(userId);
+    }
+
+    @Override
+    public PeerUpdate renameUser(String nodeId, int userId, String nickname) {
+        return nodeFor(nodeId).handleRenameUser(userId, nickname);
+    }
+
+    @Override
+    public void deliver(String nodeId, Broadcast broadcast) {
+        nodeFor(nodeId).deliver(broadcast);
+    }
+
+    private ClusterNode nodeFor(String nodeId) {
+        ClusterNode node = nodesById.get(nodeId);
+        if (node == null) {
+            throw new IllegalStateException("no node attached as " + nodeId);
+        }
+        return node;
+    }
+}
@@ -0,0 +1,127 @@
+package org.cis1200;
+
+import java.util.*;
+
+/**
+ * The {@code ServerCluster} tracks the membership of a group of
+ * {@link ClusterNode}s that together act as one chat server. Channels and
+ * nicknames are partitioned across the nodes by consistent hashing, so
+ * adding or removing a node only moves the keys on the affected slice of
+ * the {@link HashRing}.
+ *
+ * With a {@link LoopbackTransport} the whole cluster runs in one JVM:
+ * <pre>
+ *     ServerCluster cluster = new ServerCluster(new LoopbackTransport());
+ *     ClusterNode a = cluster.addNode("a");
+ *     ClusterNode b = cluster.addNode("b");
+ *     a.registerUser(0);
+ *     b.registerUser(1); // nickname "User1", unique across the cluster
+ * </pre>
+ */
+public final class ServerCluster {
+
+    private final ClusterTransport transport;
+
+    private TreeMap<String, ClusterNode> nodesById; // current cluster members
+
+    public ServerCluster(ClusterTransport transport) {
+        this.transport = transport;
+        this.nodesById = new TreeMap<>();
+    }
+
+    /**
+     * Adds a node to the cluster and moves the channels and nicknames it
+     * now owns from the existing nodes.
+     *
+     * @param nodeId The iD of the new node
+     * @return The new node, ready to accept users
+     * @throws IllegalArgumentException if a node with that iD already exists
+     */
+    public ClusterNode addNode(String nodeId) {
+        if (nodesById.containsKey(nodeId)) {
+            throw new IllegalArgumentException("node already in cluster: " + nodeId);
+        }
+        ClusterNode node = new ClusterNode(nodeId, transport, nodesById.keySet());
+        transport.attach(node);
+        for (ClusterNode peer : nodesById.values()) {
+            peer.getRing().addNode(nodeId);
+        }
+        nodesById.put(nodeId, node);
+        for (ClusterNode peer : nodesById.values()) {
+            if (peer != node) {
+                peer.rebalance();
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Removes a node from the cluster. Users homed on the node lose their
+     * connection and are deregistered; the node's channels and nicknames are
+     * then handed to the remaining nodes.
+     *
+     * @param nodeId The iD of the node to remove
+     * @return The disconnect {@link Broadcast}s for the node's users
+     * @throws IllegalArgumentException if no node with that iD exists
+     * @throws IllegalStateException    if it is the last node in the cluster
+     */
+    public List<Broadcast> removeNode(String nodeId) {
+        ClusterNode node = nodesById.get(nodeId);
+        if (node == null) {
+            throw new IllegalArgumentException("no such node: " + nodeId);
+        }
+        if (nodesById.size() == 1) {
+            throw new IllegalStateException("cannot remove the last node");
+        }
+
+        List<Broadcast> disconnects = new ArrayList<>();
+        for (Integer userId : node.getModel().getActiveUserIds()) {
+            disconnects.add(node.deregisterUser(userId));
+        }
+
+        nodesById.remove(nodeId);
+        node.getRing().removeNode(nodeId);
+        for (ClusterNode peer : nodesById.values()) {
+            peer.getRing().removeNode(nodeId);
+        }
+        node.rebalance(); // owns nothing under the new ring, so ships everything
+        transport.detach(nodeId);
+        return disconnects;
+    }
+
+    /**
+     * Gets the node with the given iD, or null if it is not in the cluster.
+     *
+     * @param nodeId The node iD to look up
+     * @return The matching node
+     */
+    public ClusterNode getNode(String nodeId) {
+        return nodesById.get(nodeId);
+    }
+
+    /**
+     * Gets the iDs of all nodes in the cluster. Changes to the returned
+     * collection do not affect the cluster.
+     *
+     * @return The node iDs
+     */
+    public Collection<String> getNodeIds() {
+        return new TreeSet<String>(nodesById.keySet());
+    }
+
+    /**
+     * Gets the iD of the node that owns the given Channel.
+     *
+     * This method is provided for testing.
+     *
+     * @param channelName The Channel name to place
+     * @return The owning node's iD
+     * @throws IllegalStateException if the cluster has no nodes
+     */
+    public String getOwnerNode(String channelName) {
+        if (nodesById.isEmpty()) {
+            throw new IllegalStateException("cluster has no nodes");
+        }
+        return nodesById.firstEntry().getValue().getRing().ownerOf(channelName);
+    }
+}
@@ -0,0 +1,346 @@
+package org.cis1200;
+
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerClusterTest {
+    private ServerCluster cluster;
+    private ClusterNode a;
+    private ClusterNode b;
+    private ClusterNode c;
+
+    // Broadcasts each node received from other nodes, by node iD
+    private Map<String, List<Broadcast>> delivered;
+
+    @BeforeEach
+    public void setUp() {
+        cluster = new ServerCluster(new LoopbackTransport());
+        delivered = new TreeMap<>();
+        a = addNode("a");
+        b = addNode("b");
+        c = addNode("c");
+
+        a.registerUser(0); // User0
+        b.registerUser(1); // User1
+        c.registerUser(2); // User2
+    }
+
+    private ClusterNode addNode(String nodeId) {
+        ClusterNode node = cluster.addNode(nodeId);
+        List<Broadcast> received = new ArrayList<>();
+        delivered.put(nodeId, received);
+        node.setDeliveryHandler(received::add);
+        return node;
+    }
+
+    private void clearDeliveries() {
+        for (List<Broadcast> received : delivered.values()) {
+            received.clear();
+        }
+    }
+
+    // the first of "prefix0", "prefix1", ... whose owner is not the given node
+    private String channelNotOwnedBy(String prefix, String nodeId) {
+        int i = 0;
+        while (cluster.getOwnerNode(prefix + i).equals(nodeId)) {
+            i++;
+        }
+        return prefix + i;
+    }
+
+    private static Set<String> users(String... nicknames) {
+        return new TreeSet<>(Arrays.asList(nicknames));
+    }
+
+    private ServerModel ownerModel(String channelName) {
+        return cluster.getNode(cluster.getOwnerNode(channelName)).getModel();
+    }
+
+    // ================================
+    // == Registration and nicknames ==
+    // ================================
+
+    @Test
+    public void testRegisterNicknamesUniqueAcrossNodes() {
+        assertEquals("User0", a.getModel().getNickname(0));
+        assertEquals("User1", b.getModel().getNickname(1));
+        assertEquals("User2", c.getModel().getNickname(2));
+    }
+
+    @Test
+    public void testRegisterReusesSmallestFreeSuffix() {
+        b.deregisterUser(1);
+        assertEquals(Broadcast.connected("User1"), c.registerUser(3));
+        assertEquals(Broadcast.connected("User3"), a.registerUser(4));
+    }
+
+    @Test
+    public void testRegisterSkipsNicknameTakenByRename() {
+        NicknameCommand nick = new NicknameCommand(0, "User0", "User3");
+        a.changeNickname(nick);
+        assertEquals(Broadcast.connected("User0"), b.registerUser(3));
+        assertEquals(Broadcast.connected("User4"), c.registerUser(4));
+    }
+
+    @Test
+    public void testRenameCollisionAcrossNodes() {
+        NicknameCommand first = new NicknameCommand(0, "User0", "alice");
+        assertEquals(Broadcast.okay(first, users()), a.changeNickname(first));
+
+        NicknameCommand taken = new NicknameCommand(1, "User1", "alice");
+        assertEquals(Broadcast.error(taken, ServerResponse.NAME_ALREADY_IN_USE),
+                b.changeNickname(taken));
+
+        NicknameCommand generated = new NicknameCommand(1, "User1", "User2");
+        assertEquals(Broadcast.error(generated, ServerResponse.NAME_ALREADY_IN_USE),
+                b.changeNickname(generated));
+
+        NicknameCommand released = new NicknameCommand(1, "User1", "User0");
+        assertEquals(Broadcast.okay(released, users()),
+                b.changeNickname(released));
+        assertEquals("User0", b.getModel().getNickname(1));
+    }
+
+    @Test
+    public void testRenameDeliveredToChannelPeers() {
+        a.createChannel(new CreateCommand(0, "User0", "java", false));
+        c.joinChannel(new JoinCommand(2, "User2", "java"));
+        clearDeliveries();
+
+        NicknameCommand nick = new NicknameCommand(2, "User2", "carol");
+        Broadcast expected = Broadcast.okay(nick, users("User0", "User2"));
+        assertEquals(expected, c.changeNickname(nick));
+        assertEquals(List.of(expected), delivered.get("a"));
+        assertTrue(delivered.get("b").isEmpty());
+        assertEquals(users("User0", "carol"), ownerModel("java").getUsersInChannel("java"));
+    }
+
+    // ===========================
+    // == Channels across nodes ==
+    // ===========================
+
+    @Test
+    public void testCreateJoinMessageAcrossNodes() {
+        CreateCommand create = new CreateCommand(0, "User0", "java", false);
+        assertEquals(Broadcast.okay(create, users("User0")), a.createChannel(create));
+
+        JoinCommand join = new JoinCommand(1, "User1", "java");
+        Broadcast joined = Broadcast.names(join, users("User0", "User1"), "User0");
+        assertEquals(joined, b.joinChannel(join));
+        assertEquals(List.of(joined), delivered.get("a"));
+
+        c.joinChannel(new JoinCommand(2, "User2", "java"));
+        clearDeliveries();
+
+        MessageCommand message = new MessageCommand(1, "User1", "java", "hello");
+        Broadcast expected = Broadcast.okay(message, users("User0", "User1", "User2"));
+        assertEquals(expected, b.sendMessage(message));
+        assertEquals(List.of(expected), delivered.get("a"));
+        assertEquals(List.of(expected), delivered.get("c"));
+        assertTrue(delivered.get("b").isEmpty(), "origin gets the return value only");
+    }
+
+    @Test
+    public void testLeaveDeliveredToLeaverAndRemainingMembers() {
+        a.createChannel(new CreateCommand(0, "User0", "java", false));
+        b.joinChannel(new JoinCommand(1, "User1", "java"));
+        c.joinChannel(new JoinCommand(2, "User2", "java"));
+        clearDeliveries();
+
+        LeaveCommand leave = new LeaveCommand(2, "User2", "java");
+        Broadcast expected = Broadcast.okay(leave, users("User0", "User1", "User2"));
+        assertEquals(expected, c.leaveChannel(leave));
+        assertEquals(List.of(expected), delivered.get("a"));
+        assertEquals(List.of(expected), delivered.get("b"));
+        assertEquals(users("User0", "User1"), ownerModel("java").getUsersInChannel("java"));
+    }
+
+    @Test
+    public void testErrorNotDeliveredToOtherNodes() {
+        a.createChannel(new CreateCommand(0, "User0", "java", false));
+        b.joinChannel(new JoinCommand(1, "User1", "java"));
+        clearDeliveries();
+
+        MessageCommand message = new MessageCommand(2, "User2", "java", "hello");
+        assertEquals(Broadcast.error(message, ServerResponse.USER_NOT_IN_CHANNEL),
+                c.sendMessage(message));
+        JoinCommand again = new JoinCommand(1, "User1", "java");
+        assertEquals(Broadcast.error(again, ServerResponse.NO_SUCH_CHANNEL),
+                b.joinChannel(again));
+        for (List<Broadcast> received : delivered.values()) {
+            assertTrue(received.isEmpty());
+        }
+    }
+
+    @Test
+    public void testMessageAfterLeaveSkipsFormerHome() {
+        a.createChannel(new CreateCommand(0, "User0", "java", false));
+        b.joinChannel(new JoinCommand(1, "User1", "java"));
+        c.joinChannel(new JoinCommand(2, "User2", "java"));
+        c.leaveChannel(new LeaveCommand(2, "User2", "java"));
+        clearDeliveries();
+
+        MessageCommand message = new MessageCommand(0, "User0", "java", "hello");
+        Broadcast sent = a.sendMessage(message);
+        assertEquals(Broadcast.okay(message, users("User0", "User1")), sent);
+        assertEquals(List.of(sent), delivered.get("b"));
+        assertTrue(delivered.get("c").isEmpty());
+    }
+
+    @Test
+    public void testFailedJoinLeavesNoReplica() {
+        String missing = channelNotOwnedBy("missing", "b");
+        JoinCommand join = new JoinCommand(1, "User1", missing);
+        assertEquals(Broadcast.error(join, ServerResponse.NO_SUCH_CHANNEL), b.joinChannel(join));
+        assertNull(ownerModel(missing).getNickname(1));
+    }
+
+    @Test
+    public void testLeaveDropsReplica() {
+        String channel = channelNotOwnedBy("room", "c");
+        b.createChannel(new CreateCommand(1, "User1", channel, false));
+        c.joinChannel(new JoinCommand(2, "User2", channel));
+        assertEquals("User2", ownerModel(channel).getNickname(2));
+
+        c.leaveChannel(new LeaveCommand(2, "User2", channel));
+        assertNull(ownerModel(channel).getNickname(2));
+    }
+
+    @Test
+    public void testInviteAndKickAcrossNodes() {
+        String secret = channelNotOwnedBy("secret", "b"); // b would know User1 anyway
+        a.createChannel(new CreateCommand(0, "User0", secret, true));
+        clearDeliveries();
+
+        InviteCommand invite = new InviteCommand(0, "User0", secret, "User2");
+        Broadcast invited = Broadcast.names(invite, users("User0", "User2"), "User0");
+        assertEquals(invited, a.inviteUser(invite));
+        assertEquals(List.of(invited), delivered.get("c"));
+        assertTrue(delivered.get("b").isEmpty());
+
+        InviteCommand notOwner = new InviteCommand(2, "User2", secret, "User1");
+        assertEquals(Broadcast.error(notOwner, ServerResponse.USER_NOT_OWNER),
+                c.inviteUser(notOwner));
+        assertNull(ownerModel(secret).getNickname(1), "failed invite leaves no replica");
+
+        InviteCommand unknown = new InviteCommand(0, "User0", secret, "nobody");
+        assertEquals(Broadcast.error(unknown, ServerResponse.NO_SUCH_USER),
+                a.inviteUser(unknown));
+        clearDeliveries();
+
+        KickCommand kick = new KickCommand(0, "User0", secret, "User2");
+        Broadcast kicked = Broadcast.okay(kick, users("User0", "User2"));
+        assertEquals(kicked, a.kickUser(kick));
+        assertEquals(List.of(kicked), delivered.get("c"));
+        assertEquals(users("User0"), ownerModel(secret).getUsersInChannel(secret));
+    }
+
+    @Test
+    public void testDeregisterDeliveredAndOwnedChannelsDeleted() {
+        b.createChannel(new CreateCommand(1, "User1", "java", false));
+        a.joinChannel(new JoinCommand(0, "User0", "java"));
+        c.createChannel(new CreateCommand(2, "User2", "python", false));
+        a.joinChannel(new JoinCommand(0, "User0", "python"));
+        clearDeliveries();
+
+        Broadcast expected = Broadcast.disconnected("User1", users("User0"));
+        assertEquals(expected, b.deregisterUser(1));
+        assertEquals(List.of(expected), delivered.get("a"));
+        assertTrue(delivered.get("c").isEmpty());
+        assertFalse(ownerModel("java").getChannels().contains("java"));
+        assertTrue(ownerModel("python").getChannels().contains("python"));
+    }
+
+    // ========================
+    // == Membership changes ==
+    // ========================
+
+    @Test
+    public void testAddNodeMovesChannels() {
+        for (int i = 0; i < 20; i++) {
+            a.createChannel(new CreateCommand(0, "User0", "ch" + i, false));
+            b.joinChannel(new JoinCommand(1, "User1", "ch" + i));
+        }
+        ClusterNode d = addNode("d");
+
+        Collection<String> moved = d.getModel().getChannels();
+        assertFalse(moved.isEmpty());
+        for (String nodeId : cluster.getNodeIds()) {
+            for (String channel : cluster.getNode(nodeId).getModel().getChannels()) {
+                assertEquals(nodeId, cluster.getOwnerNode(channel));
+            }
+        }
+
+        String channel = moved.iterator().next();
+        assertEquals(users("User0", "User1"), d.getModel().getUsersInChannel(channel));
+        assertEquals("User0", d.getModel().getOwner(channel));
+        clearDeliveries();
+
+        MessageCommand message = new MessageCommand(1, "User1", channel, "still here");
+        Broadcast expected = Broadcast.okay(message, users("User0", "User1"));
+        assertEquals(expected, b.sendMessage(message));
+        assertEquals(List.of(expected), delivered.get("a"));
+    }
+
+    @Test
+    public void testRemoveNodeHandsOverChannelsAndDirectory() {
+        for (int i = 0; i < 20; i++) {
+            a.createChannel(new CreateCommand(0, "User0", "ch" + i, false));
+            b.joinChannel(new JoinCommand(1, "User1", "ch" + i));
+        }
+        ClusterNode d = addNode("d");
+        d.registerUser(3); // User3
+        Collection<String> onD = d.getModel().getChannels();
+        assertFalse(onD.isEmpty());
+
+        List<Broadcast> disconnects = cluster.removeNode("d");
+        assertEquals(List.of(Broadcast.disconnected("User3", users())),
+                disconnects);
+        assertFalse(cluster.getNodeIds().contains("d"));
+
+        for (String channel : onD) {
+            assertEquals(users("User0", "User1"), ownerModel(channel).getUsersInChannel(channel));
+        }
+        int total = 0;
+        for (String nodeId : cluster.getNodeIds()) {
+            total += cluster.getNode(nodeId).getModel().getChannels().size();
+        }
+        assertEquals(20, total);
+
+        // directory entries held by "d" were handed over, and User3 was freed
+        NicknameCommand toUser1 = new NicknameCommand(0, "User0", "User1");
+        assertEquals(Broadcast.error(toUser1, ServerResponse.NAME_ALREADY_IN_USE),
+                a.changeNickname(toUser1));
+        NicknameCommand toUser2 = new NicknameCommand(0, "User0", "User2");
+        assertEquals(Broadcast.error(toUser2, ServerResponse.NAME_ALREADY_IN_USE),
+                a.changeNickname(toUser2));
+        assertEquals(Broadcast.connected("User3"), c.registerUser(4));
+    }
+
+    @Test
+    public void testRemoveNodeDisconnectsItsUsers() {
+        a.createChannel(new CreateCommand(0, "User0", "java", false));
+        b.joinChannel(new JoinCommand(1, "User1", "java"));
+        clearDeliveries();
+
+        assertEquals(List.of(Broadcast.disconnected("User1", users("User0"))),
+                cluster.removeNode("b"));
+        assertEquals(users("User0"), ownerModel("java").getUsersInChannel("java"));
+    }
+
+    @Test
+    public void testRemoveLastNodeFails() {
+        cluster.removeNode("a");
+        cluster.removeNode("b");
+        assertThrows(IllegalStateException.class, () -> cluster.removeNode("c"));
+    }
+
+    @Test
+    public void testOwnerNodeOfEmptyCluster() {
+        ServerCluster empty = new ServerCluster(new LoopbackTransport());
+        assertThrows(IllegalStateException.class, () -> empty.getOwnerNode("java"));
+    }
+}
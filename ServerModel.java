@@ -1,6 +1,9 @@
 package org.cis1200;
 
+import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /*
  * Make sure to write your own tests in ServerModelTest.java.
@@ -67,7 +70,34 @@ public final class ServerModel {
 
     private TreeSet<Integer> activeuserIDs; // users connected to the server
 
+    /**
+     * Default member count at which {@link #sendMessage(MessageCommand)}
+     * resolves its recipients in parallel instead of inline.
+     */
+    public static final int DEFAULT_FANOUT_THRESHOLD = 4096;
+
+    // number of user IDs a single fork/join task resolves without splitting
+    private static final int FANOUT_CHUNK = 1024;
+
+    private final int fanoutThreshold; // channels at least this big fan out in parallel
+
+    private ForkJoinPool fanoutPool; // this model's delivery workers, created on first use
+
     public ServerModel() { // constructor initializes every collection
+        this(DEFAULT_FANOUT_THRESHOLD);
+    }
+
+    /**
+     * Constructs a {@code ServerModel} whose message fanout switches to the
+     * parallel path for channels with at least {@code fanoutThreshold} members.
+     *
+     * @param fanoutThreshold The smallest channel size resolved in parallel
+     */
+    public ServerModel(int fanoutThreshold) {
+        if (fanoutThreshold < 1) {
+            throw new IllegalArgumentException("fanoutThreshold must be positive");
+        }
+        this.fanoutThreshold = fanoutThreshold;
         this.idByClient = new TreeMap<>();
         this.namebyChannel = new TreeMap<>();
         this.nicknamebyclient = new TreeMap<>();
@@ -218,14 +248,28 @@ public final class ServerModel {
         if (activeuserIDs.contains(userId)) {
             return null;
         }
-        String nickname = generateUniqueNickname();
+        return registerUser(userId, generateUniqueNickname());
+    }
+
+    /**
+     * Registers a newly connected user under a nickname chosen by the caller.
+     * Used by {@link ClusterNode}, which reserves nicknames cluster-wide
+     * instead of through {@link #generateUniqueNickname()}.
+     *
+     * @param userId   The new user's unique iD
+     * @param nickname The nickname already reserved for the user
+     * @return The {@link Broadcast} object generated by calling
+     *         {@link Broadcast#connected(String)}, or null if the user iD
+     *         is already connected
+     */
+    Broadcast registerUser(int userId, String nickname) {
+        if (activeuserIDs.contains(userId)) {
+            return null;
+        }
         activeuserIDs.add(userId);
         Client current = new Client(userId, nickname);
         idByClient.put(userId, current);
         nicknamebyclient.put(nickname, current);
-        // We have taken care of generating the nickname and returning
-        // the Broadcast for you. You need to modify this method to
-        // store the new user's iD and username in this model's internal state.
         return Broadcast.connected(nickname);
     }
 
@@ -282,7 +326,28 @@ public final class ServerModel {
     public Broadcast deregisterUser(int userId) {
         if (activeuserIDs.contains(userId)) {
             String nn = getNickname(userId);
-            TreeSet<String> usersToNotify = new TreeSet<>();
+            TreeSet<String> usersToNotify = forgetUser(userId);
+            return Broadcast.disconnected(nn, usersToNotify);
+            //return braodcast object including all users notified
+        }
+        return null;
+    }
+
+    /**
+     * Helper for {@link #deregisterUser(int)}, also called directly by
+     * {@link ClusterNode} on nodes that only hold a replica of the user.
+     *
+     * Removes the user from every Channel, deletes the channels they own and
+     * drops their information from the model's internal state.
+     *
+     * @param userId The iD of the user to forget
+     * @return The nicknames of users who shared a Channel with the user;
+     *         empty if the user is unknown to this model
+     */
+    TreeSet<String> forgetUser(int userId) {
+        TreeSet<String> usersToNotify = new TreeSet<>();
+        if (idByClient.containsKey(userId)) {
+            String nn = getNickname(userId);
 
             // collect all channels owned by the Client
             TreeSet<String> ownedChannels = getallchannels(userId);
@@ -309,11 +374,8 @@ public final class ServerModel {
             nicknamebyclient.remove(nn);
             idByClient.remove(userId);
             activeuserIDs.remove(userId);
-
-            return Broadcast.disconnected(nn, usersToNotify);
-            //return braodcast object including all users notified
         }
-        return null;
+        return usersToNotify;
     }
 
     /**
@@ -341,33 +403,12 @@ public final class ServerModel {
 
         if (activeuserIDs.contains(iD)) {
             if (isValidName(nn)) {
-                TreeSet<String> channelNames = new TreeSet<>();
-                TreeSet<String> usersToNotify = new TreeSet<>();
-
                 // Check if the new nickname is already in use in the server
                 if (nicknamebyclient.containsKey(nn)) {
                     return Broadcast.error(nickCommand, ServerResponse.NAME_ALREADY_IN_USE);
                 }
 
-                for (Map.Entry<String, Channel> entry : namebyChannel.entrySet()) {
-                    Channel current = entry.getValue();
-                    if (current.userIds.contains(iD)) {
-                        String channelName = entry.getKey();
-                        channelNames.add(channelName); //Add all channels containing the user
-                    }
-                }
-
-                for (String channelName : channelNames) {
-                    Collection<String> nicknames = getUsersInChannel(channelName);
-                    usersToNotify.addAll(nicknames); // Add all recipients
-                }
-
-                //Change the nickname
-                Client current = idByClient.get(iD);
-                nicknamebyclient.remove(current.nickname); //remove original
-                current.nickname = nn;
-                nicknamebyclient.put(nn,current); //add new
-
+                TreeSet<String> usersToNotify = renameUser(iD, nn);
                 return Broadcast.okay(nickCommand, usersToNotify);
             }
             return Broadcast.error(nickCommand, ServerResponse.INVALID_NAME);
@@ -375,6 +416,45 @@ public final class ServerModel {
         return null;
     }
 
+    /**
+     * Helper for {@link #changeNickname(NicknameCommand)}, also called
+     * directly by {@link ClusterNode} once the new nickname has been
+     * reserved cluster-wide.
+     *
+     * @param userId The iD of the user being renamed
+     * @param nn     The user's new nickname
+     * @return The nicknames (before the change) of all users who share a
+     *         Channel with the renamed user; empty if the user is unknown
+     *         to this model
+     */
+    TreeSet<String> renameUser(int userId, String nn) {
+        TreeSet<String> channelNames = new TreeSet<>();
+        TreeSet<String> usersToNotify = new TreeSet<>();
+        if (!idByClient.containsKey(userId)) {
+            return usersToNotify;
+        }
+
+        for (Map.Entry<String, Channel> entry : namebyChannel.entrySet()) {
+            Channel current = entry.getValue();
+            if (current.userIds.contains(userId)) {
+                String channelName = entry.getKey();
+                channelNames.add(channelName); //Add all channels containing the user
+            }
+        }
+
+        for (String channelName : channelNames) {
+            Collection<String> nicknames = getUsersInChannel(channelName);
+            usersToNotify.addAll(nicknames); // Add all recipients
+        }
+
+        //Change the nickname
+        Client current = idByClient.get(userId);
+        nicknamebyclient.remove(current.nickname); //remove original
+        current.nickname = nn;
+        nicknamebyclient.put(nn,current); //add new
+        return usersToNotify;
+    }
+
     /**
      * Determines if a given nickname is valid or invalid (contains at least
      * one alphanumeric character, and no non-alphanumeric characters).
@@ -499,7 +579,6 @@ public final class ServerModel {
     public Broadcast sendMessage(MessageCommand messageCommand) {
         Integer iD = messageCommand.getSenderId();
         String channelName = messageCommand.getChannel();
-        Collection<String> usersToNotify = new TreeSet<>();
 
         if (!namebyChannel.containsKey(channelName)) {
             return Broadcast.error(messageCommand,ServerResponse.NO_SUCH_CHANNEL);
@@ -511,8 +590,73 @@ public final class ServerModel {
             return Broadcast.error(messageCommand,ServerResponse.USER_NOT_IN_CHANNEL);
         }
 
-        usersToNotify.addAll(getUsersInChannel(channelName));
-        return Broadcast.okay(messageCommand,usersToNotify);
+        return Broadcast.okay(messageCommand,resolveRecipients(ch));
+    }
+
+    /**
+     * Helper for {@link #sendMessage(MessageCommand)}.
+     *
+     * Resolves the nicknames of every member of the given Channel. Channels
+     * smaller than the fanout threshold are resolved inline. Larger ones are
+     * split into chunks on this model's own {@link ForkJoinPool}, so unrelated
+     * users of the common pool cannot delay a fanout. The caller blocks
+     * until every chunk is done, so the model is never mutated while workers
+     * read it and messages from one Channel still reach each recipient in the
+     * order they were sent.
+     *
+     * Both paths return an unmodifiable list sorted by nickname. Nicknames
+     * are unique, so this has the same order as {@link #getUsersInChannel}.
+     *
+     * @param ch The Channel whose members should receive a message
+     * @return The nicknames of all members, in sorted order
+     */
+    private List<String> resolveRecipients(Channel ch) {
+        if (ch.userIds.size() < fanoutThreshold) {
+            return Collections.unmodifiableList(new ArrayList<>(getUsersInChannel(ch.nm)));
+        }
+        Integer[] ids = ch.userIds.toArray(new Integer[0]);
+        String[] nicknames = new String[ids.length];
+        if (fanoutPool == null) {
+            // workers are daemon threads and exit when idle
+            fanoutPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        fanoutPool.invoke(new RecipientTask(ids, nicknames, 0, ids.length));
+        Arrays.parallelSort(nicknames);
+        return Collections.unmodifiableList(Arrays.asList(nicknames));
+    }
+
+    /**
+     * Resolves {@code ids[lo, hi)} into {@code nicknames[lo, hi)}, splitting
+     * in half until a range fits in one chunk. Tasks write disjoint slots, so
+     * no synchronization is needed beyond the fork/join itself.
+     */
+    private final class RecipientTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Integer[] ids;
+        private final String[] nicknames;
+        private final int lo;
+        private final int hi;
+
+        RecipientTask(Integer[] ids, String[] nicknames, int lo, int hi) {
+            this.ids = ids;
+            this.nicknames = nicknames;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= FANOUT_CHUNK) {
+                for (int i = lo; i < hi; i++) {
+                    nicknames[i] = idByClient.get(ids[i]).nickname;
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new RecipientTask(ids, nicknames, lo, mid),
+                    new RecipientTask(ids, nicknames, mid, hi));
+        }
     }
 
     /**
@@ -673,4 +817,205 @@ public final class ServerModel {
         return Broadcast.okay(kickCommand,usersToNotify);
     }
 
+    // ====================================
+    // == Cluster support (ClusterNode) ==
+    // ====================================
+
+    /**
+     * A detached copy of a Channel's state, used to hand a Channel over to
+     * another node when the cluster is rebalanced. The owner and members are
+     * carried with their nicknames so the receiving model can create replicas
+     * for them.
+     */
+    public static final class ChannelState implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String nm;
+        private final int ownerId;
+        private final String ownerNickname;
+        private final boolean inviteOnly;
+        private final TreeMap<Integer, String> members; // member iD -> nickname
+
+        private ChannelState(String nm, Client owner, boolean inviteOnly,
+                TreeMap<Integer, String> members) {
+            this.nm = nm;
+            this.ownerId = owner.userId;
+            this.ownerNickname = owner.nickname;
+            this.inviteOnly = inviteOnly;
+            this.members = members;
+        }
+    }
+
+    /**
+     * Checks whether a user is connected to this model, as opposed to being
+     * a replica of a user homed on another node.
+     *
+     * @param userId The user iD to check
+     * @return true if the user is connected to this model
+     */
+    boolean isConnected(int userId) {
+        return activeuserIDs.contains(userId);
+    }
+
+    /**
+     * Gets the iDs of all users connected to this model, as opposed to
+     * replicas of users homed elsewhere in a cluster.
+     *
+     * @return A copy of the connected user iDs
+     */
+    Collection<Integer> getActiveUserIds() {
+        return new TreeSet<Integer>(activeuserIDs);
+    }
+
+    /**
+     * Gets the iDs of the owner and members of a Channel. The collection is
+     * empty if no such Channel exists.
+     *
+     * @param channelName The Channel to inspect
+     * @return A copy of the Channel's owner and member iDs
+     */
+    Collection<Integer> getMemberIds(String channelName) {
+        TreeSet<Integer> ids = new TreeSet<>();
+        if (namebyChannel.containsKey(channelName)) {
+            Channel ch = namebyChannel.get(channelName);
+            ids.addAll(ch.userIds);
+            ids.add(ch.owner.userId);
+        }
+        return ids;
+    }
+
+    /**
+     * Gets the iDs of every user who is in, or owns, a Channel on this model
+     * that the given user is in or owns, including the user themself.
+     *
+     * @param userId The user whose Channel peers to collect
+     * @return A copy of the peer iDs; empty if the user is in no Channel here
+     */
+    Collection<Integer> getChannelPeers(int userId) {
+        TreeSet<Integer> ids = new TreeSet<>();
+        for (Channel ch : namebyChannel.values()) {
+            if (ch.userIds.contains(userId) || ch.owner.userId == userId) {
+                ids.addAll(ch.userIds);
+                ids.add(ch.owner.userId);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Checks whether a user is a member of a Channel, i.e. one of the users
+     * its {@link Broadcast}s are sent to.
+     *
+     * @param channelName The Channel to inspect
+     * @param userId      The user iD to check
+     * @return true if the Channel exists and the user is a member
+     */
+    boolean isMember(String channelName, int userId) {
+        Channel ch = namebyChannel.get(channelName);
+        return ch != null && ch.userIds.contains(userId);
+    }
+
+    /**
+     * Checks whether a Channel is invite-only.
+     *
+     * @param channelName The Channel to inspect
+     * @return true if the Channel exists and is invite-only
+     */
+    boolean isInviteOnly(String channelName) {
+        Channel ch = namebyChannel.get(channelName);
+        return ch != null && ch.inviteOnly;
+    }
+
+    /**
+     * Records a user who is connected to another node, so that channels on
+     * this model can refer to them. Does nothing if the user is already known
+     * or has no nickname (i.e. is not registered anywhere).
+     *
+     * @param userId   The iD of the remote user
+     * @param nickname The remote user's current nickname
+     */
+    void addRemoteUser(int userId, String nickname) {
+        if (nickname != null && !idByClient.containsKey(userId)) {
+            Client current = new Client(userId, nickname);
+            idByClient.put(userId, current);
+            nicknamebyclient.put(nickname, current);
+        }
+    }
+
+    /**
+     * Drops the replica of a single remote user if they are no longer a
+     * member or the owner of any Channel on this model. Does nothing for
+     * users connected to this model.
+     *
+     * @param userId The iD of the remote user
+     */
+    void pruneRemoteUser(int userId) {
+        if (activeuserIDs.contains(userId) || !idByClient.containsKey(userId)) {
+            return;
+        }
+        for (Channel ch : namebyChannel.values()) {
+            if (ch.userIds.contains(userId) || ch.owner.userId == userId) {
+                return;
+            }
+        }
+        Client current = idByClient.remove(userId);
+        nicknamebyclient.remove(current.nickname);
+    }
+
+    /**
+     * Drops replicas of remote users who are no longer in any Channel
+     * on this model.
+     */
+    void pruneRemoteUsers() {
+        TreeSet<Integer> referenced = new TreeSet<>(activeuserIDs);
+        for (Channel ch : namebyChannel.values()) {
+            referenced.addAll(ch.userIds);
+            referenced.add(ch.owner.userId);
+        }
+        TreeSet<Integer> stale = new TreeSet<>(idByClient.keySet());
+        stale.removeAll(referenced);
+        for (Integer iD : stale) {
+            Client current = idByClient.remove(iD);
+            nicknamebyclient.remove(current.nickname);
+        }
+    }
+
+    /**
+     * Removes a Channel from this model and returns its state so that it
+     * can be imported by another node.
+     *
+     * @param channelName The Channel to hand over
+     * @return The Channel's state, or null if no such Channel exists
+     */
+    ChannelState exportChannel(String channelName) {
+        Channel ch = namebyChannel.remove(channelName);
+        if (ch == null) {
+            return null;
+        }
+        TreeMap<Integer, String> members = new TreeMap<>();
+        for (Integer iD : ch.userIds) {
+            members.put(iD, idByClient.get(iD).nickname);
+        }
+        return new ChannelState(ch.nm, ch.owner, ch.inviteOnly, members);
+    }
+
+    /**
+     * Adds a Channel previously produced by {@link #exportChannel(String)},
+     * creating replicas for any members this model does not know yet.
+     *
+     * @param state The Channel state to adopt
+     * @return The name of the imported Channel
+     */
+    String importChannel(ChannelState state) {
+        addRemoteUser(state.ownerId, state.ownerNickname);
+        for (Map.Entry<Integer, String> entry : state.members.entrySet()) {
+            addRemoteUser(entry.getKey(), entry.getValue());
+        }
+        Channel ch = new Channel(state.nm, idByClient.get(state.ownerId));
+        ch.inviteOnly = state.inviteOnly;
+        ch.userIds.addAll(state.members.keySet());
+        namebyChannel.put(state.nm, ch);
+        return state.nm;
+    }
+
 }
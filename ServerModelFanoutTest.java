@@ -0,0 +1,52 @@
+package org.cis1200;
+
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerModelFanoutTest {
+
+    // enough members to split into several fork/join chunks
+    private static final int MEMBERS = 2500;
+
+    private static ServerModel buildChannel(ServerModel model) {
+        for (int i = 0; i < MEMBERS; i++) {
+            model.registerUser(i);
+        }
+        model.createChannel(new CreateCommand(0, "User0", "java", false));
+        for (int i = 1; i < MEMBERS; i++) {
+            model.joinChannel(new JoinCommand(i, "User" + i, "java"));
+        }
+        return model;
+    }
+
+    @Test
+    public void testParallelFanoutMatchesInline() {
+        ServerModel inline = buildChannel(new ServerModel());
+        ServerModel parallel = buildChannel(new ServerModel(1));
+
+        MessageCommand message = new MessageCommand(7, "User7", "java", "hello");
+        Broadcast expected = Broadcast.okay(message, inline.getUsersInChannel("java"));
+        assertEquals(expected, inline.sendMessage(message));
+        assertEquals(expected, parallel.sendMessage(message));
+    }
+
+    @Test
+    public void testParallelFanoutAfterLeave() {
+        ServerModel parallel = buildChannel(new ServerModel(1));
+        parallel.leaveChannel(new LeaveCommand(42, "User42", "java"));
+
+        MessageCommand message = new MessageCommand(0, "User0", "java", "hello");
+        Collection<String> recipients = parallel.getUsersInChannel("java");
+        assertFalse(recipients.contains("User42"));
+        assertEquals(Broadcast.okay(message, recipients),
+                parallel.sendMessage(message));
+    }
+
+    @Test
+    public void testThresholdMustBePositive() {
+        assertThrows(IllegalArgumentException.class, () -> new ServerModel(0));
+    }
+}